@@ -1,9 +1,26 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class TSCrunch {
     private static final int LONGESTRLE = 64;
@@ -16,6 +33,13 @@ public class TSCrunch {
     private static final int LONGLZOFFSET = 32767;
     private static final int LZ2OFFSET = 94;
     private static final int LZ2SIZE = 2;
+    private static final int HASHBITS = 16;
+    private static final int SAMPLEBLOCKS = 8;
+    private static final int SAMPLELEN = 1024;
+    private static final int STARTUPRUNS = 10;
+
+    // --all-variants names, in the order they are written.
+    private static final String[] VARIANTS = { "p", "x", "x2", "xb", "i" };
 
     private static final int RLEMASK = 0x81;
     private static final int LZMASK = 0x80;
@@ -24,104 +48,47 @@ public class TSCrunch {
 
     private static final int TERMINATOR = LONGESTLITERAL + 1;
 
-    private static final byte[] BOOT = new byte[] {
-        (byte)0x01, (byte)0x08, (byte)0x0B, (byte)0x08, (byte)0x0A, (byte)0x00, (byte)0x9E, (byte)0x32,
-        (byte)0x30, (byte)0x36, (byte)0x31, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x78, (byte)0xA2,
-        (byte)0xCC, (byte)0xBD, (byte)0x1A, (byte)0x08, (byte)0x95, (byte)0x00, (byte)0xCA, (byte)0xD0,
-        (byte)0xF8, (byte)0x4C, (byte)0x02, (byte)0x00, (byte)0x34, (byte)0xBD, (byte)0x00, (byte)0x10,
-        (byte)0x9D, (byte)0x00, (byte)0xFF, (byte)0xE8, (byte)0xD0, (byte)0xF7, (byte)0xC6, (byte)0x07,
-        (byte)0xA9, (byte)0x06, (byte)0xC7, (byte)0x04, (byte)0x90, (byte)0xEF, (byte)0xA0, (byte)0x00,
-        (byte)0xB3, (byte)0x24, (byte)0x30, (byte)0x29, (byte)0xC9, (byte)0x20, (byte)0xB0, (byte)0x47,
-        (byte)0xE6, (byte)0x24, (byte)0xD0, (byte)0x02, (byte)0xE6, (byte)0x25, (byte)0xB9, (byte)0xFF,
-        (byte)0xFF, (byte)0x99, (byte)0xFF, (byte)0xFF, (byte)0xC8, (byte)0xCA, (byte)0xD0, (byte)0xF6,
-        (byte)0x98, (byte)0xAA, (byte)0xA0, (byte)0x00, (byte)0x65, (byte)0x27, (byte)0x85, (byte)0x27,
-        (byte)0xB0, (byte)0x74, (byte)0x8A, (byte)0x65, (byte)0x24, (byte)0x85, (byte)0x24, (byte)0x90,
-        (byte)0xD7, (byte)0xE6, (byte)0x25, (byte)0xB0, (byte)0xD3, (byte)0x4B, (byte)0x7F, (byte)0x90,
-        (byte)0x39, (byte)0xF0, (byte)0x68, (byte)0xA2, (byte)0x02, (byte)0x85, (byte)0x59, (byte)0xC8,
-        (byte)0xB1, (byte)0x24, (byte)0xA4, (byte)0x59, (byte)0x91, (byte)0x27, (byte)0x88, (byte)0x91,
-        (byte)0x27, (byte)0xD0, (byte)0xFB, (byte)0xA9, (byte)0x00, (byte)0xB0, (byte)0xD5, (byte)0xA9,
-        (byte)0x37, (byte)0x85, (byte)0x01, (byte)0x58, (byte)0x4C, (byte)0x61, (byte)0x00, (byte)0xF0,
-        (byte)0xF6, (byte)0x09, (byte)0x80, (byte)0x65, (byte)0x27, (byte)0x85, (byte)0xA0, (byte)0xA5,
-        (byte)0x28, (byte)0xE9, (byte)0x00, (byte)0x85, (byte)0xA1, (byte)0xB1, (byte)0xA0, (byte)0x91,
-        (byte)0x27, (byte)0xC8, (byte)0xB1, (byte)0xA0, (byte)0x91, (byte)0x27, (byte)0x98, (byte)0xAA,
-        (byte)0xD0, (byte)0xB0, (byte)0x4A, (byte)0x85, (byte)0xA5, (byte)0xC8, (byte)0xA5, (byte)0x27,
-        (byte)0x90, (byte)0x31, (byte)0xF1, (byte)0x24, (byte)0x85, (byte)0xA0, (byte)0xA5, (byte)0x28,
-        (byte)0xE9, (byte)0x00, (byte)0x85, (byte)0xA1, (byte)0xA2, (byte)0x02, (byte)0xA0, (byte)0x00,
-        (byte)0xB1, (byte)0xA0, (byte)0x91, (byte)0x27, (byte)0xC8, (byte)0xB1, (byte)0xA0, (byte)0x91,
-        (byte)0x27, (byte)0xC8, (byte)0xB9, (byte)0xA0, (byte)0x00, (byte)0x91, (byte)0x27, (byte)0xC0,
-        (byte)0x00, (byte)0xD0, (byte)0xF6, (byte)0x98, (byte)0xB0, (byte)0x84, (byte)0xE6, (byte)0x28,
-        (byte)0x18, (byte)0x90, (byte)0x87, (byte)0xA0, (byte)0xFF, (byte)0x84, (byte)0x59, (byte)0xA2,
-        (byte)0x01, (byte)0xD0, (byte)0x99, (byte)0x71, (byte)0x24, (byte)0x85, (byte)0xA0, (byte)0xC8,
-        (byte)0xB3, (byte)0x24, (byte)0x09, (byte)0x80, (byte)0x65, (byte)0x28, (byte)0x85, (byte)0xA1,
-        (byte)0xE0, (byte)0x80, (byte)0x26, (byte)0xA5, (byte)0xA2, (byte)0x03, (byte)0xD0, (byte)0xC6
-    };
-
-    private static final byte[] BLANK_BOOT = new byte[] {
-        (byte)0x01, (byte)0x08, (byte)0x0B, (byte)0x08, (byte)0x0A, (byte)0x00, (byte)0x9E, (byte)0x32,
-        (byte)0x30, (byte)0x36, (byte)0x31, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x78, (byte)0xA9,
-        (byte)0x0B, (byte)0x8D, (byte)0x11, (byte)0xD0, (byte)0xA2, (byte)0xCC, (byte)0xBD, (byte)0x1F,
-        (byte)0x08, (byte)0x95, (byte)0x00, (byte)0xCA, (byte)0xD0, (byte)0xF8, (byte)0x4C, (byte)0x02,
-        (byte)0x00, (byte)0x34, (byte)0xBD, (byte)0x00, (byte)0x10, (byte)0x9D, (byte)0x00, (byte)0xFF,
-        (byte)0xE8, (byte)0xD0, (byte)0xF7, (byte)0xC6, (byte)0x07, (byte)0xA9, (byte)0x06, (byte)0xC7,
-        (byte)0x04, (byte)0x90, (byte)0xEF, (byte)0xA0, (byte)0x00, (byte)0xB3, (byte)0x24, (byte)0x30,
-        (byte)0x29, (byte)0xC9, (byte)0x20, (byte)0xB0, (byte)0x47, (byte)0xE6, (byte)0x24, (byte)0xD0,
-        (byte)0x02, (byte)0xE6, (byte)0x25, (byte)0xB9, (byte)0xFF, (byte)0xFF, (byte)0x99, (byte)0xFF,
-        (byte)0xFF, (byte)0xC8, (byte)0xCA, (byte)0xD0, (byte)0xF6, (byte)0x98, (byte)0xAA, (byte)0xA0,
-        (byte)0x00, (byte)0x65, (byte)0x27, (byte)0x85, (byte)0x27, (byte)0xB0, (byte)0x74, (byte)0x8A,
-        (byte)0x65, (byte)0x24, (byte)0x85, (byte)0x24, (byte)0x90, (byte)0xD7, (byte)0xE6, (byte)0x25,
-        (byte)0xB0, (byte)0xD3, (byte)0x4B, (byte)0x7F, (byte)0x90, (byte)0x39, (byte)0xF0, (byte)0x68,
-        (byte)0xA2, (byte)0x02, (byte)0x85, (byte)0x59, (byte)0xC8, (byte)0xB1, (byte)0x24, (byte)0xA4,
-        (byte)0x59, (byte)0x91, (byte)0x27, (byte)0x88, (byte)0x91, (byte)0x27, (byte)0xD0, (byte)0xFB,
-        (byte)0xA9, (byte)0x00, (byte)0xB0, (byte)0xD5, (byte)0xA9, (byte)0x37, (byte)0x85, (byte)0x01,
-        (byte)0x58, (byte)0x4C, (byte)0x61, (byte)0x00, (byte)0xF0, (byte)0xF6, (byte)0x09, (byte)0x80,
-        (byte)0x65, (byte)0x27, (byte)0x85, (byte)0xA0, (byte)0xA5, (byte)0x28, (byte)0xE9, (byte)0x00,
-        (byte)0x85, (byte)0xA1, (byte)0xB1, (byte)0xA0, (byte)0x91, (byte)0x27, (byte)0xC8, (byte)0xB1,
-        (byte)0xA0, (byte)0x91, (byte)0x27, (byte)0x98, (byte)0xAA, (byte)0xD0, (byte)0xB0, (byte)0x4A,
-        (byte)0x85, (byte)0xA5, (byte)0xC8, (byte)0xA5, (byte)0x27, (byte)0x90, (byte)0x31, (byte)0xF1,
-        (byte)0x24, (byte)0x85, (byte)0xA0, (byte)0xA5, (byte)0x28, (byte)0xE9, (byte)0x00, (byte)0x85,
-        (byte)0xA1, (byte)0xA2, (byte)0x02, (byte)0xA0, (byte)0x00, (byte)0xB1, (byte)0xA0, (byte)0x91,
-        (byte)0x27, (byte)0xC8, (byte)0xB1, (byte)0xA0, (byte)0x91, (byte)0x27, (byte)0xC8, (byte)0xB9,
-        (byte)0xA0, (byte)0x00, (byte)0x91, (byte)0x27, (byte)0xC0, (byte)0x00, (byte)0xD0, (byte)0xF6,
-        (byte)0x98, (byte)0xB0, (byte)0x84, (byte)0xE6, (byte)0x28, (byte)0x18, (byte)0x90, (byte)0x87,
-        (byte)0xA0, (byte)0xFF, (byte)0x84, (byte)0x59, (byte)0xA2, (byte)0x01, (byte)0xD0, (byte)0x99,
-        (byte)0x71, (byte)0x24, (byte)0x85, (byte)0xA0, (byte)0xC8, (byte)0xB3, (byte)0x24, (byte)0x09,
-        (byte)0x80, (byte)0x65, (byte)0x28, (byte)0x85, (byte)0xA1, (byte)0xE0, (byte)0x80, (byte)0x26,
-        (byte)0xA5, (byte)0xA2, (byte)0x03, (byte)0xD0, (byte)0xC6
-    };
-
-    private static final byte[] BOOT2 = new byte[] {
-        (byte)0x01, (byte)0x08, (byte)0x0B, (byte)0x08, (byte)0x0A, (byte)0x00, (byte)0x9E, (byte)0x32,
-        (byte)0x30, (byte)0x36, (byte)0x31, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x78, (byte)0xA9,
-        (byte)0x34, (byte)0x85, (byte)0x01, (byte)0xA2, (byte)0xD0, (byte)0xBD, (byte)0x1F, (byte)0x08,
-        (byte)0x9D, (byte)0xFB, (byte)0x00, (byte)0xCA, (byte)0xD0, (byte)0xF7, (byte)0x4C, (byte)0x00,
-        (byte)0x01, (byte)0xAA, (byte)0xAA, (byte)0xAA, (byte)0xAA, (byte)0xBD, (byte)0x00, (byte)0x10,
-        (byte)0x9D, (byte)0x00, (byte)0xFF, (byte)0xE8, (byte)0xD0, (byte)0xF7, (byte)0xCE, (byte)0x05,
-        (byte)0x01, (byte)0xA9, (byte)0x06, (byte)0xCF, (byte)0x02, (byte)0x01, (byte)0x90, (byte)0xED,
-        (byte)0xA0, (byte)0x00, (byte)0xB3, (byte)0xFC, (byte)0x30, (byte)0x27, (byte)0xC9, (byte)0x20,
-        (byte)0xB0, (byte)0x45, (byte)0xE6, (byte)0xFC, (byte)0xD0, (byte)0x02, (byte)0xE6, (byte)0xFD,
-        (byte)0xB1, (byte)0xFC, (byte)0x91, (byte)0xFE, (byte)0xC8, (byte)0xCA, (byte)0xD0, (byte)0xF8,
-        (byte)0x98, (byte)0xAA, (byte)0xA0, (byte)0x00, (byte)0x65, (byte)0xFE, (byte)0x85, (byte)0xFE,
-        (byte)0xB0, (byte)0x74, (byte)0x8A, (byte)0x65, (byte)0xFC, (byte)0x85, (byte)0xFC, (byte)0x90,
-        (byte)0xD9, (byte)0xE6, (byte)0xFD, (byte)0xB0, (byte)0xD5, (byte)0x4B, (byte)0x7F, (byte)0x90,
-        (byte)0x39, (byte)0xF0, (byte)0x68, (byte)0xA2, (byte)0x02, (byte)0x85, (byte)0xF9, (byte)0xC8,
-        (byte)0xB1, (byte)0xFC, (byte)0xA4, (byte)0xF9, (byte)0x91, (byte)0xFE, (byte)0x88, (byte)0x91,
-        (byte)0xFE, (byte)0xD0, (byte)0xFB, (byte)0xA5, (byte)0xF9, (byte)0xB0, (byte)0xD5, (byte)0xA9,
-        (byte)0x37, (byte)0x85, (byte)0x01, (byte)0x58, (byte)0x4C, (byte)0x5F, (byte)0x01, (byte)0xF0,
-        (byte)0xF6, (byte)0x09, (byte)0x80, (byte)0x65, (byte)0xFE, (byte)0x85, (byte)0xFA, (byte)0xA5,
-        (byte)0xFF, (byte)0xE9, (byte)0x00, (byte)0x85, (byte)0xFB, (byte)0xB1, (byte)0xFA, (byte)0x91,
-        (byte)0xFE, (byte)0xC8, (byte)0xB1, (byte)0xFA, (byte)0x91, (byte)0xFE, (byte)0x98, (byte)0xAA,
-        (byte)0xD0, (byte)0xB0, (byte)0x4A, (byte)0x8D, (byte)0xA3, (byte)0x01, (byte)0xC8, (byte)0xA5,
-        (byte)0xFE, (byte)0x90, (byte)0x30, (byte)0xF1, (byte)0xFC, (byte)0x85, (byte)0xFA, (byte)0xA5,
-        (byte)0xFF, (byte)0xE9, (byte)0x00, (byte)0x85, (byte)0xFB, (byte)0xA2, (byte)0x02, (byte)0xA0,
-        (byte)0x00, (byte)0xB1, (byte)0xFA, (byte)0x91, (byte)0xFE, (byte)0xC8, (byte)0xB1, (byte)0xFA,
-        (byte)0x91, (byte)0xFE, (byte)0xC8, (byte)0xB1, (byte)0xFA, (byte)0x91, (byte)0xFE, (byte)0xC0,
-        (byte)0x00, (byte)0xD0, (byte)0xF7, (byte)0x98, (byte)0xB0, (byte)0x84, (byte)0xE6, (byte)0xFF,
-        (byte)0x18, (byte)0x90, (byte)0x87, (byte)0xA0, (byte)0xAA, (byte)0x84, (byte)0xF9, (byte)0xA2,
-        (byte)0x01, (byte)0xD0, (byte)0x99, (byte)0x71, (byte)0xFC, (byte)0x85, (byte)0xFA, (byte)0xC8,
-        (byte)0xB3, (byte)0xFC, (byte)0x09, (byte)0x80, (byte)0x65, (byte)0xFF, (byte)0x85, (byte)0xFB,
-        (byte)0xE0, (byte)0x80, (byte)0x2E, (byte)0xA3, (byte)0x01, (byte)0xA2, (byte)0x03, (byte)0xD0,
-        (byte)0xC6
-    };
+    // The sfx boot code, as hex. It is only decoded when an sfx is requested,
+    // so that the raw path doesn't pay for it at startup.
+    private static class Boot {
+        static final byte[] BOOT = hex(
+            "01080B080A009E3230363100000078A2CCBD1A089500CAD0F84C020034BD0010"
+            + "9D00FFE8D0F7C607A906C70490EFA000B3243029C920B047E624D002E625B9FF"
+            + "FF99FFFFC8CAD0F698AAA00065278527B0748A6524852490D7E625B0D34B7F90"
+            + "39F068A2028559C8B124A4599127889127D0FBA900B0D5A9378501584C6100F0"
+            + "F60980652785A0A528E90085A1B1A09127C8B1A0912798AAD0B04A85A5C8A527"
+            + "9031F12485A0A528E90085A1A202A000B1A09127C8B1A09127C8B9A0009127C0"
+            + "00D0F698B084E628189087A0FF8459A201D099712485A0C8B3240980652885A1"
+            + "E08026A5A203D0C6");
+
+        static final byte[] BLANK_BOOT = hex(
+            "01080B080A009E3230363100000078A90B8D11D0A2CCBD1F089500CAD0F84C02"
+            + "0034BD00109D00FFE8D0F7C607A906C70490EFA000B3243029C920B047E624D0"
+            + "02E625B9FFFF99FFFFC8CAD0F698AAA00065278527B0748A6524852490D7E625"
+            + "B0D34B7F9039F068A2028559C8B124A4599127889127D0FBA900B0D5A9378501"
+            + "584C6100F0F60980652785A0A528E90085A1B1A09127C8B1A0912798AAD0B04A"
+            + "85A5C8A5279031F12485A0A528E90085A1A202A000B1A09127C8B1A09127C8B9"
+            + "A0009127C000D0F698B084E628189087A0FF8459A201D099712485A0C8B32409"
+            + "80652885A1E08026A5A203D0C6");
+
+        static final byte[] BOOT2 = hex(
+            "01080B080A009E3230363100000078A9348501A2D0BD1F089DFB00CAD0F74C00"
+            + "01AAAAAAAABD00109D00FFE8D0F7CE0501A906CF020190EDA000B3FC3027C920"
+            + "B045E6FCD002E6FDB1FC91FEC8CAD0F898AAA00065FE85FEB0748A65FC85FC90"
+            + "D9E6FDB0D54B7F9039F068A20285F9C8B1FCA4F991FE8891FED0FBA5F9B0D5A9"
+            + "378501584C5F01F0F6098065FE85FAA5FFE90085FBB1FA91FEC8B1FA91FE98AA"
+            + "D0B04A8DA301C8A5FE9030F1FC85FAA5FFE90085FBA202A000B1FA91FEC8B1FA"
+            + "91FEC8B1FA91FEC000D0F798B084E6FF189087A0AA84F9A201D09971FC85FAC8"
+            + "B3FC098065FF85FBE0802EA301A203D0C6");
+
+        private static byte[] hex(String s) {
+            byte[] b = new byte[s.length() / 2];
+            for (int i = 0; i < b.length; i++) {
+                b[i] = (byte)Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+            }
+            return b;
+        }
+    }
 
 
     private enum TokenType {
@@ -146,17 +113,576 @@ public class TSCrunch {
         Token token;
     }
 
-    private static class Options {
+    private static class Options implements Cloneable {
         boolean quiet;
         boolean prg;
         boolean sfx;
         boolean blank;
         boolean inplace;
         boolean selfcheck;
+        String history;
+        boolean arenaStats;
+        long timeBudget;
+        boolean incremental;
+        boolean probe;
+        boolean d64;
+        int estimate;
+        String files;
         int sfxmode;
         int jmp;
+        boolean allVariants;
+        String variants;
+        boolean startupBench;
+
+        Options copy() {
+            try {
+                return (Options)clone();
+            } catch (CloneNotSupportedException ex) {
+                throw new AssertionError(ex);
+            }
+        }
+    }
+
+    // Working buffers for crunch(), kept per thread and grown to the largest
+    // input seen, so that bulk runs don't reallocate them on every call.
+    private static class CrunchArena {
+        long[] dist = new long[0];
+        int[] prev = new int[0];
+        Token[] prevToken = new Token[0];
+        ArrayList<Edge>[] graph = newGraph(0, null);
+        boolean[] present = new boolean[257];
+        Token[] tokens = new Token[257];
+        int[] zeroCounts = new int[257];
+        int[] zeroFirstSeen = new int[257];
+        int[] hashHead = new int[1 << HASHBITS];
+        int[] hashNext = new int[0];
+        int[] lzOffs = new int[LONGESTLONGLZ + 1];
+        int[] lzRescan = new int[LONGESTLONGLZ + 1];
+        long edgeSlots = 0;
+        int calls = 0;
+        int hits = 0;
+
+        @SuppressWarnings("unchecked")
+        private static ArrayList<Edge>[] newGraph(int n, ArrayList<Edge>[] old) {
+            ArrayList<Edge>[] g = new ArrayList[n];
+            int i = 0;
+            if (old != null) {
+                System.arraycopy(old, 0, g, 0, old.length);
+                i = old.length;
+            }
+            for (; i < n; i++) {
+                g[i] = new ArrayList<>();
+            }
+            return g;
+        }
+
+        // Makes room for a graph of n vertices and resets its first n entries.
+        void reserve(int n) {
+            calls++;
+            if (dist.length >= n) {
+                hits++;
+            } else {
+                int cap = maxInt(n, dist.length + dist.length / 2);
+                dist = new long[cap];
+                prev = new int[cap];
+                prevToken = new Token[cap];
+                hashNext = new int[cap];
+                graph = newGraph(cap, graph);
+            }
+            Arrays.fill(dist, 0, n, Long.MAX_VALUE / 4);
+            Arrays.fill(prev, 0, n, -1);
+        }
+
+        // Drops the references to this run's edges and tokens, keeping capacity.
+        void release(int n) {
+            long slots = 0;
+            for (int i = 0; i < n; i++) {
+                slots += graph[i].size();
+                graph[i].clear();
+            }
+            Arrays.fill(prevToken, 0, n, null);
+            Arrays.fill(tokens, null);
+            if (slots > edgeSlots) {
+                edgeSlots = slots;
+            }
+        }
+
+        // Rough estimate, assuming compressed 4 byte references.
+        long retainedBytes() {
+            long n = dist.length;
+            long bytes = n * (8 + 4 + 4 + 4);
+            bytes += n * (4 + 24 + 16) + edgeSlots * 4;
+            bytes += present.length + tokens.length * 4L + zeroCounts.length * 4L + zeroFirstSeen.length * 4L;
+            bytes += hashHead.length * 4L + (lzOffs.length + lzRescan.length) * 4L;
+            return bytes;
+        }
+    }
+
+    // Wall-clock budget for a crunch() call, set with --time-budget. Once the
+    // deadline has passed, the encoder finishes with a short-range match search,
+    // and the parse with a single forward pass instead of the priority queue.
+    private static class CrunchBudget {
+        private final long deadline;
+        int degradedAt = -1;
+
+        CrunchBudget(long millis) {
+            deadline = System.nanoTime() + millis * 1000000L;
+        }
+
+        boolean expired() {
+            return System.nanoTime() - deadline >= 0;
+        }
+
+        boolean degraded() {
+            return degradedAt >= 0;
+        }
+    }
+
+    // Per-position match candidates of a previous run, persisted next to the
+    // output. Candidates at a position only depend on the bytes up to
+    // LONGLZOFFSET behind and LONGESTRLE + 1 ahead of it, so on a lightly edited
+    // input most of them can be reused, or completed by scanning just the
+    // match sources that overlap an edit.
+    private static class CandidateCache {
+        static final int MAGIC = 0x54534343;
+        static final int VERSION = 2;
+
+        static final int REUSE = 0;
+        static final int RESCAN = 1;
+        static final int SEARCH = 2;
+
+        byte[] src;
+        int base;
+        // The LZ candidates of position i are lz[lzStart[i]] to lz[lzStart[i + 1] - 1],
+        // each packed as length << 16 | offset, see packLz().
+        int[] lzStart;
+        int[] lz;
+        int[] lz2;
+
+        // Changed ranges in order, [newFrom, newTo) in the new input matching
+        // [oldFrom, oldTo) in the cached one. Bytes between them are equal, shifted
+        // by newTo - oldTo of the range before.
+        int ranges;
+        int[] newFrom;
+        int[] newTo;
+        int[] oldFrom;
+        int[] oldTo;
+        // Cached position of the last position classified REUSE or RESCAN.
+        int oldPos;
+
+        int reused;
+        int rescanned;
+        int searched;
+
+        // Records the ranges of newSrc that differ from the cached input.
+        void diff(byte[] newSrc, int newBase) {
+            if (src == null || base != newBase) {
+                src = null;
+                return;
+            }
+            int oldLen = src.length;
+            int newLen = newSrc.length;
+            int len = minInt(oldLen, newLen);
+            int prefix = 0;
+            while (prefix < len && src[prefix] == newSrc[prefix]) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < len - prefix && src[oldLen - 1 - suffix] == newSrc[newLen - 1 - suffix]) {
+                suffix++;
+            }
+            ranges = 0;
+            newFrom = new int[4];
+            newTo = new int[4];
+            oldFrom = new int[4];
+            oldTo = new int[4];
+            if (oldLen == newLen) {
+                // Edits closer than a lookahead window share their affected
+                // positions anyway, so they are kept as one range.
+                int end = newLen - suffix;
+                int i = prefix;
+                while (i < end) {
+                    int to = i + 1;
+                    for (int j = to; j < end && j - to <= LONGESTRLE; j++) {
+                        if (src[j] != newSrc[j]) {
+                            to = j + 1;
+                        }
+                    }
+                    addRange(i, to, i, to);
+                    i = to;
+                    while (i < end && src[i] == newSrc[i]) {
+                        i++;
+                    }
+                }
+            } else {
+                // An insertion or deletion. Both sides get at least one byte, so that
+                // matches running across the junction count as overlapping it.
+                if (prefix == oldLen - suffix || prefix == newLen - suffix) {
+                    if (prefix > 0) {
+                        prefix--;
+                    } else {
+                        suffix--;
+                    }
+                }
+                addRange(prefix, newLen - suffix, prefix, oldLen - suffix);
+            }
+        }
+
+        private void addRange(int nFrom, int nTo, int oFrom, int oTo) {
+            if (ranges == newFrom.length) {
+                newFrom = Arrays.copyOf(newFrom, ranges * 2);
+                newTo = Arrays.copyOf(newTo, ranges * 2);
+                oldFrom = Arrays.copyOf(oldFrom, ranges * 2);
+                oldTo = Arrays.copyOf(oldTo, ranges * 2);
+            }
+            newFrom[ranges] = nFrom;
+            newTo[ranges] = nTo;
+            oldFrom[ranges] = oFrom;
+            oldTo[ranges] = oTo;
+            ranges++;
+        }
+
+        // Index of the first range ending after pos in the given coordinates.
+        private int rangeAfter(int[] to, int pos) {
+            int lo = 0;
+            int hi = ranges;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (to[mid] > pos) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            return lo;
+        }
+
+        private int shiftBefore(int r) {
+            return r == 0 ? 0 : newTo[r - 1] - oldTo[r - 1];
+        }
+
+        // Maps a cached position to the new input. A position inside a changed
+        // range maps to the start of that range.
+        private int toNew(int j) {
+            int r = rangeAfter(oldTo, j);
+            if (r < ranges && j >= oldFrom[r]) {
+                return newFrom[r];
+            }
+            return j + shiftBefore(r);
+        }
+
+        int classify(int i) {
+            if (src == null) {
+                return SEARCH;
+            }
+            int r = rangeAfter(newTo, i);
+            if (r < ranges && newFrom[r] < i + LONGESTRLE + 1) {
+                return SEARCH;
+            }
+            oldPos = i - shiftBefore(r);
+            if (rangeAfter(newTo, i - LONGLZOFFSET) == r) {
+                return REUSE;
+            }
+            for (int k = lzStart[oldPos]; k < lzStart[oldPos + 1]; k++) {
+                int j = oldPos - (lz[k] & 0xffff);
+                int o = rangeAfter(oldTo, j);
+                if (o < ranges && oldFrom[o] < j + (lz[k] >>> 16) + 1) {
+                    return SEARCH;
+                }
+            }
+            return RESCAN;
+        }
+
+        // Fills offs as lzScan() would have for position i from the candidates of
+        // the last classified position, returning the longest length. Sources the
+        // edits pushed out of the window are dropped, and as the nearest offsets
+        // grow with the length, so are all longer ones.
+        int loadLz(int i, int[] offs) {
+            int len = 0;
+            for (int k = lzStart[oldPos]; k < lzStart[oldPos + 1]; k++) {
+                int off = i - toNew(oldPos - (lz[k] & 0xffff));
+                if (off > LONGLZOFFSET) {
+                    break;
+                }
+                int upTo = lz[k] >>> 16;
+                for (len++; len <= upTo; len++) {
+                    offs[len] = off;
+                }
+                len = upTo;
+            }
+            return len;
+        }
+
+        // Completes the loaded candidates of position i with the sources in
+        // [lo, i - 1] that overlap an edit or were outside the cached window,
+        // returning the longest length.
+        int rescan(byte[] workSrc, int[] next, int i, int lo, int[] offs, int lzLen, int[] tmp) {
+            int from = maxInt(lo, i - LONGLZOFFSET);
+            int to = minInt(toNew(oldPos - LONGLZOFFSET), i);
+            if (from < to) {
+                lzLen = mergeScan(workSrc, next, i, from, to - 1, offs, lzLen, tmp);
+            }
+            int r = rangeAfter(newTo, maxInt(lo - 1, i - LONGLZOFFSET - 1));
+            for (; r < ranges && newFrom[r] < i; r++) {
+                from = maxInt(maxInt(lo, to), newFrom[r] - LONGESTLONGLZ);
+                lzLen = mergeScan(workSrc, next, i, from, minInt(newTo[r], i) - 1, offs, lzLen, tmp);
+            }
+            return lzLen;
+        }
+
+        private static int mergeScan(byte[] workSrc, int[] next, int i, int lo, int hi,
+                                     int[] offs, int lzLen, int[] tmp) {
+            if (lo > hi) {
+                return lzLen;
+            }
+            // The hash chain of i has to be walked from i down to lo, so a short
+            // range is cheaper to compare source by source, nearest first as well.
+            int scanLen = 0;
+            if (hi - lo < LONGESTLONGLZ * 4) {
+                int limit = minInt(LONGESTLONGLZ, workSrc.length - i);
+                for (int j = hi; j >= lo && scanLen < limit; j--) {
+                    int l = 0;
+                    while (l < limit && workSrc[j + l] == workSrc[i + l]) {
+                        l++;
+                    }
+                    if (l >= MINLZ && l > scanLen) {
+                        for (int len = scanLen + 1; len <= l; len++) {
+                            tmp[len] = i - j;
+                        }
+                        scanLen = l;
+                    }
+                }
+            } else {
+                scanLen = lzScan(workSrc, next, i, lo, hi, tmp);
+            }
+            for (int len = MINLZ; len <= scanLen; len++) {
+                if (len > lzLen || tmp[len] < offs[len]) {
+                    offs[len] = tmp[len];
+                }
+            }
+            return maxInt(lzLen, scanLen);
+        }
+    }
+
+    // A 1541 disk image, 35 or 40 tracks, optionally with error info. Only
+    // tracks 1-35 are tracked in the BAM, so new sectors are only allocated there.
+    private static class D64Image {
+        static final int DIR_TRACK = 18;
+        static final int BAM_TRACKS = 35;
+        static final int INTERLEAVE = 10;
+
+        static class DirEntry {
+            int entryOffset;
+            int type;
+            String name;
+            int track;
+            int sector;
+        }
+
+        final ByteBuffer buf;
+        final int tracks;
+
+        D64Image(ByteBuffer buf) throws IOException {
+            this.buf = buf;
+            int size = buf.capacity();
+            if (size == 174848 || size == 175531) {
+                tracks = 35;
+            } else if (size == 196608 || size == 197376) {
+                tracks = 40;
+            } else {
+                throw new IOException("not a d64 image");
+            }
+        }
+
+        static int sectorsPerTrack(int track) {
+            if (track <= 17) {
+                return 21;
+            } else if (track <= 24) {
+                return 19;
+            } else if (track <= 30) {
+                return 18;
+            }
+            return 17;
+        }
+
+        int sectorOffset(int track, int sector) throws IOException {
+            if (track < 1 || track > tracks || sector < 0 || sector >= sectorsPerTrack(track)) {
+                throw new IOException("bad track/sector " + track + "/" + sector);
+            }
+            int off = 0;
+            for (int t = 1; t < track; t++) {
+                off += sectorsPerTrack(t);
+            }
+            return (off + sector) * 256;
+        }
+
+        private int totalSectors() {
+            int total = 0;
+            for (int t = 1; t <= tracks; t++) {
+                total += sectorsPerTrack(t);
+            }
+            return total;
+        }
+
+        List<DirEntry> directory() throws IOException {
+            List<DirEntry> entries = new ArrayList<>();
+            int track = DIR_TRACK;
+            int sector = 1;
+            int guard = sectorsPerTrack(DIR_TRACK);
+            while (track != 0 && guard-- > 0) {
+                int off = sectorOffset(track, sector);
+                for (int e = 0; e < 8; e++) {
+                    int eo = off + e * 32;
+                    int type = buf.get(eo + 2) & 0xff;
+                    if (type == 0) {
+                        continue;
+                    }
+                    DirEntry d = new DirEntry();
+                    d.entryOffset = eo;
+                    d.type = type;
+                    d.track = buf.get(eo + 3) & 0xff;
+                    d.sector = buf.get(eo + 4) & 0xff;
+                    StringBuilder name = new StringBuilder();
+                    for (int k = 0; k < 16; k++) {
+                        int c = buf.get(eo + 5 + k) & 0xff;
+                        if (c == 0xa0) {
+                            break;
+                        }
+                        name.append((char)c);
+                    }
+                    d.name = name.toString();
+                    entries.add(d);
+                }
+                track = buf.get(off) & 0xff;
+                sector = buf.get(off + 1) & 0xff;
+            }
+            return entries;
+        }
+
+        byte[] readFile(DirEntry d) throws IOException {
+            ByteBuilder out = new ByteBuilder();
+            int track = d.track;
+            int sector = d.sector;
+            int guard = totalSectors();
+            while (track != 0) {
+                if (guard-- <= 0) {
+                    throw new IOException("sector chain loops");
+                }
+                int off = sectorOffset(track, sector);
+                int nextTrack = buf.get(off) & 0xff;
+                int nextSector = buf.get(off + 1) & 0xff;
+                int count = nextTrack == 0 ? nextSector - 1 : 254;
+                for (int k = 0; k < count; k++) {
+                    out.appendByte(buf.get(off + 2 + k));
+                }
+                track = nextTrack;
+                sector = nextSector;
+            }
+            return out.toArray();
+        }
+
+        private int bamOffset(int track) throws IOException {
+            return sectorOffset(DIR_TRACK, 0) + 4 * track;
+        }
+
+        private boolean isFree(int track, int sector) throws IOException {
+            int off = bamOffset(track);
+            return (buf.get(off + 1 + sector / 8) & (1 << (sector % 8))) != 0;
+        }
+
+        private void setFree(int track, int sector, boolean free) throws IOException {
+            if (track > BAM_TRACKS || isFree(track, sector) == free) {
+                return;
+            }
+            int off = bamOffset(track);
+            int mask = 1 << (sector % 8);
+            int b = buf.get(off + 1 + sector / 8) & 0xff;
+            buf.put(off + 1 + sector / 8, (byte)(free ? b | mask : b & ~mask));
+            int count = buf.get(off) & 0xff;
+            buf.put(off, (byte)(free ? count + 1 : count - 1));
+        }
+
+        // Finds a free sector the way DOS does: INTERLEAVE sectors after the
+        // previous one on the same track, then on the tracks closest to the
+        // directory.
+        private int[] allocate(int lastTrack, int lastSector) throws IOException {
+            int[] ts = allocateOn(lastTrack, lastSector + INTERLEAVE);
+            for (int dist = 1; ts == null && dist < BAM_TRACKS; dist++) {
+                ts = allocateOn(DIR_TRACK - dist, 0);
+                if (ts == null) {
+                    ts = allocateOn(DIR_TRACK + dist, 0);
+                }
+            }
+            if (ts == null) {
+                throw new IOException("disk full");
+            }
+            return ts;
+        }
+
+        private int[] allocateOn(int track, int start) throws IOException {
+            if (track < 1 || track > BAM_TRACKS || track == DIR_TRACK) {
+                return null;
+            }
+            int spt = sectorsPerTrack(track);
+            for (int k = 0; k < spt; k++) {
+                int sector = (start + k) % spt;
+                if (isFree(track, sector)) {
+                    setFree(track, sector, false);
+                    return new int[] { track, sector };
+                }
+            }
+            return null;
+        }
+
+        // Frees the sectors of d and stores data in newly allocated ones.
+        void replaceFile(DirEntry d, byte[] data) throws IOException {
+            int track = d.track;
+            int sector = d.sector;
+            int guard = totalSectors();
+            while (track != 0 && guard-- > 0) {
+                int off = sectorOffset(track, sector);
+                setFree(track, sector, true);
+                track = buf.get(off) & 0xff;
+                sector = buf.get(off + 1) & 0xff;
+            }
+
+            int blocks = maxInt(1, (data.length + 253) / 254);
+            int[] ts = allocate(DIR_TRACK - 1, -INTERLEAVE);
+            d.track = ts[0];
+            d.sector = ts[1];
+            for (int b = 0; b < blocks; b++) {
+                int off = sectorOffset(ts[0], ts[1]);
+                int from = b * 254;
+                int count = minInt(254, data.length - from);
+                int[] next = b + 1 < blocks ? allocate(ts[0], ts[1]) : null;
+                if (next != null) {
+                    buf.put(off, (byte)next[0]);
+                    buf.put(off + 1, (byte)next[1]);
+                } else {
+                    buf.put(off, (byte)0);
+                    buf.put(off + 1, (byte)(count + 1));
+                }
+                for (int k = 0; k < 254; k++) {
+                    buf.put(off + 2 + k, k < count ? data[from + k] : (byte)0);
+                }
+                ts = next;
+            }
+
+            buf.put(d.entryOffset + 3, (byte)d.track);
+            buf.put(d.entryOffset + 4, (byte)d.sector);
+            buf.put(d.entryOffset + 30, (byte)(blocks & 0xff));
+            buf.put(d.entryOffset + 31, (byte)(blocks >> 8));
+        }
     }
 
+    // Not a lambda, whose bootstrap would cost every run several ms at startup.
+    private static final ThreadLocal<CrunchArena> ARENA = new ThreadLocal<CrunchArena>() {
+        @Override
+        protected CrunchArena initialValue() {
+            return new CrunchArena();
+        }
+    };
+
     private static class ByteBuilder {
         byte[] buf = new byte[0];
         int len = 0;
@@ -192,13 +718,27 @@ public class TSCrunch {
 
     private static void usage() {
         System.out.println("TSCrunch 1.3.1 - binary cruncher, by Antonio Savona");
-        System.out.println("Usage: tscrunch [-p] [-i] [-r] [-q] [-x[2] $addr] [--selfcheck] infile outfile");
+        System.out.println("Usage: tscrunch [-p] [-i] [-r] [-q] [-x[2] $addr] [--history file] [--selfcheck] infile outfile");
+        System.out.println("       tscrunch --estimate[-fast] [options] infile");
         System.out.println(" -p  : input file is a prg, first 2 bytes are discarded");
         System.out.println(" -x  $addr: creates a self extracting file (forces -p)");
         System.out.println(" -x2 $addr: creates a self extracting file with sfx code in stack (forces -p)");
         System.out.println(" -b  : blanks screen during decrunching (only with -x)");
         System.out.println(" -i  : inplace crunching (forces -p)");
         System.out.println(" -q  : quiet mode");
+        System.out.println(" --history file: data already in memory right before infile, used as LZ history (not with -x)");
+        System.out.println(" --time-budget ms: use a cheaper search once ms milliseconds have elapsed");
+        System.out.println(" --all-variants [p,x,x2,xb,i]: write the listed variants to outfile-p.bin, -x.prg, ...");
+        System.out.println("                 from a single parse (default: all, xb only with -b);");
+        System.out.println("                 x, x2 and xb need the jmp address of -x or -x2");
+        System.out.println(" --estimate: print the size outfile would have, without writing it");
+        System.out.println(" --estimate-fast: like --estimate, parsing only a sample of infile (less precise)");
+        System.out.println(" --d64: infile and outfile are d64 images, PRG files are crunched in parallel (needs -x, -x2 or -i)");
+        System.out.println(" --files name[,name...]: PRG files to crunch with --d64 (default: all)");
+        System.out.println(" --probe: store input as literals, skipping the optimal parse, if it looks incompressible");
+        System.out.println(" --incremental: keep match candidates in outfile.tsc and reuse them on the next run");
+        System.out.println(" --startup-bench: time 10 runs of the given command line, each in a new JVM");
+        System.out.println(" --arena-stats: report crunch buffer reuse and retained footprint");
         System.out.println(" --selfcheck: compare output sizes against python/go encoders");
     }
 
@@ -210,11 +750,12 @@ public class TSCrunch {
         return a > b ? a : b;
     }
 
-    private static int findOptimalZero(byte[] src) {
-        int[] counts = new int[257];
-        int[] firstSeen = new int[257];
+    private static int findOptimalZero(CrunchArena arena, byte[] src, int from) {
+        int[] counts = arena.zeroCounts;
+        int[] firstSeen = arena.zeroFirstSeen;
+        Arrays.fill(counts, 0);
         Arrays.fill(firstSeen, -1);
-        int i = 0;
+        int i = from;
         int order = 0;
 
         while (i < src.length - 1) {
@@ -276,50 +817,56 @@ public class TSCrunch {
         return -1;
     }
 
-    private static Token lzBest(byte[] src, int pos, int minlz) {
-        Token t = new Token();
-        t.type = TokenType.LZ;
-        t.pos = pos;
-        t.size = 0;
-        t.offset = 0;
-        t.rlebyte = 0;
-
-        if (src.length - pos < minlz) {
-            return t;
-        }
-
-        int bestpos = pos - 1;
-        int bestlen = 0;
-        int x0 = pos - LONGLZOFFSET;
-        if (x0 < 0) {
-            x0 = 0;
+    // Links every position to the previous one whose first MINLZ bytes have the
+    // same hash, so that lzScan() only visits likely match sources.
+    private static void buildChains(byte[] src, int[] head, int[] next) {
+        Arrays.fill(head, -1);
+        for (int p = 0; p < src.length; p++) {
+            if (p + MINLZ > src.length) {
+                next[p] = -1;
+                continue;
+            }
+            int key = (src[p] & 0xff) << 16 | (src[p + 1] & 0xff) << 8 | (src[p + 2] & 0xff);
+            int h = (key * 0x9E3779B1) >>> (32 - HASHBITS);
+            next[p] = head[h];
+            head[h] = p;
         }
+    }
 
-        for (int j = pos - 1; j >= x0; j--) {
-            boolean match = true;
-            for (int k = 0; k < minlz; k++) {
-                if (src[j + k] != src[pos + k]) {
-                    match = false;
-                    break;
-                }
-            }
-            if (!match) {
+    // Walks the match sources for pos between hi and lo, nearest first. For every
+    // length up to the returned longest one, offs[length] is set to the nearest
+    // offset with a match at least that long, so that each length can use the
+    // cheapest LZ token available for it.
+    private static int lzScan(byte[] src, int[] next, int pos, int lo, int hi, int[] offs) {
+        int best = 0;
+        int limit = minInt(LONGESTLONGLZ, src.length - pos);
+        for (int j = next[pos]; j >= lo && best < limit; j = next[j]) {
+            if (j > hi) {
                 continue;
             }
-
-            int l = minlz;
-            while (pos + l < src.length && l < LONGESTLONGLZ && src[j + l] == src[pos + l]) {
+            int l = 0;
+            while (l < limit && src[j + l] == src[pos + l]) {
                 l++;
             }
-            if ((l > bestlen && (pos - j < LZOFFSET || pos - bestpos >= LZOFFSET || l > LONGESTLZ)) || (l > bestlen + 1)) {
-                bestpos = j;
-                bestlen = l;
+            if (l >= MINLZ && l > best) {
+                for (int len = best + 1; len <= l; len++) {
+                    offs[len] = pos - j;
+                }
+                best = l;
             }
         }
+        return best;
+    }
 
-        t.size = bestlen;
-        t.offset = pos - bestpos;
-        return t;
+    // Appends the candidates in offs, up to best, to lz as packed length and
+    // offset pairs, one for each offset change. Returns the new count.
+    private static int packLz(int[] offs, int best, int[] lz, int count) {
+        for (int len = MINLZ; len <= best; len++) {
+            if (len == best || offs[len + 1] != offs[len]) {
+                lz[count++] = len << 16 | offs[len];
+            }
+        }
+        return count;
     }
 
     private static boolean zeroRunAt(byte[] src, int pos, int run) {
@@ -425,59 +972,135 @@ public class TSCrunch {
         return c;
     }
 
-    private static byte[] crunch(byte[] src, Options opt, byte[] addr, int[] optimalRunOut) {
+    // The optimal token stream for an input, before it is emitted.
+    private static class Parse {
+        byte[] workSrc;
+        Token[] tokens;
+        byte remainderByte;
+        int optimalRun;
+    }
+
+    private static byte[] crunch(byte[] src, byte[] history, Options opt, byte[] addr, int[] optimalRunOut,
+            CrunchBudget budget, CandidateCache cache) {
+        Parse parsed = parse(src, history, opt.inplace, budget, cache);
+        if (parsed == null) {
+            return null;
+        }
+        optimalRunOut[0] = parsed.optimalRun;
+        return emitCrunched(parsed.workSrc, parsed.tokens, parsed.remainderByte, parsed.optimalRun, opt, addr);
+    }
+
+    // history, when not null, is data already resident right before the decrunch
+    // address: it is never emitted, but LZ and LZ2 tokens may reference it.
+    // budget, when not null, is checked once per position while building the
+    // graph and periodically during the path search. cache, when not null, holds
+    // the candidates of a previous run on entry and those of this run on return.
+    private static Parse parse(byte[] src, byte[] history, boolean inplace, CrunchBudget budget,
+            CandidateCache cache) {
         if (src == null || src.length <= 0) {
             return null;
         }
 
-        byte[] workSrc = src;
-        int workLen = src.length;
+        int base = 0;
+        if (history != null) {
+            base = minInt(history.length, LONGLZOFFSET);
+        }
+
+        int srcLen = src.length;
         byte remainderByte = 0;
 
-        if (opt.inplace) {
-            remainderByte = workSrc[workLen - 1];
-            workLen -= 1;
-            workSrc = Arrays.copyOf(workSrc, workLen);
+        if (inplace) {
+            remainderByte = src[srcLen - 1];
+            srcLen -= 1;
         }
 
-        int optimalRun = findOptimalZero(workSrc);
-        optimalRunOut[0] = optimalRun;
+        int workLen = base + srcLen;
+        byte[] workSrc = new byte[workLen];
+        if (base > 0) {
+            System.arraycopy(history, history.length - base, workSrc, 0, base);
+        }
+        System.arraycopy(src, 0, workSrc, base, srcLen);
 
-        @SuppressWarnings("unchecked")
-        ArrayList<Edge>[] graph = new ArrayList[workLen + 1];
-        for (int i = 0; i <= workLen; i++) {
-            graph[i] = new ArrayList<>();
+        CrunchArena arena = ARENA.get();
+        int optimalRun = findOptimalZero(arena, workSrc, base);
+
+        int n = workLen;
+        arena.reserve(n + 1);
+        ArrayList<Edge>[] graph = arena.graph;
+        boolean[] present = arena.present;
+        Token[] tokens = arena.tokens;
+
+        int[] hashNext = arena.hashNext;
+        buildChains(workSrc, arena.hashHead, hashNext);
+        int[] lzOffs = arena.lzOffs;
+
+        int[] lzStart = null;
+        int[] lzPacked = null;
+        int lzCount = 0;
+        int[] lz2s = null;
+        if (cache != null) {
+            cache.diff(workSrc, base);
+            lzStart = new int[workLen + 1];
+            lzPacked = new int[workLen];
+            lz2s = new int[workLen];
         }
 
         int maxTokenSize = 256;
-        for (int i = 0; i < workLen; i++) {
-            boolean[] present = new boolean[257];
-            Token[] tokens = new Token[257];
+        int lzWindow = LONGLZOFFSET;
+        for (int i = base; i < workLen; i++) {
+            Arrays.fill(present, false);
             int maxSize = 0;
 
+            if (budget != null && lzWindow == LONGLZOFFSET && budget.expired()) {
+                budget.degradedAt = i - base;
+                lzWindow = LZOFFSET - 1;
+            }
+
             int rleSize = rleLength(workSrc, i);
             int rleCap = minInt(rleSize, LONGESTRLE);
 
-            Token lz;
+            int kind = cache != null ? cache.classify(i) : CandidateCache.SEARCH;
+            int lzLen = 0;
             if (rleCap < LONGESTLONGLZ - 1) {
-                int minlz = maxInt(rleCap + 1, MINLZ);
-                lz = lzBest(workSrc, i, minlz);
-            } else {
-                lz = new Token();
-                lz.type = TokenType.LZ;
-                lz.pos = i;
-                lz.size = 1;
-                lz.offset = 0;
+                int lo = maxInt(i - lzWindow, 0);
+                if (kind == CandidateCache.SEARCH) {
+                    lzLen = lzScan(workSrc, hashNext, i, lo, i - 1, lzOffs);
+                } else {
+                    lzLen = cache.loadLz(i, lzOffs);
+                    if (kind == CandidateCache.RESCAN) {
+                        // Sources away from the edits are unchanged, so the cached nearest
+                        // offsets still hold unless a source overlapping one is nearer.
+                        lzLen = cache.rescan(workSrc, hashNext, i, lo, lzOffs, lzLen, arena.lzRescan);
+                    }
+                }
+            }
+
+            if (cache != null) {
+                if (lzCount + LONGESTLONGLZ > lzPacked.length) {
+                    lzPacked = Arrays.copyOf(lzPacked, lzPacked.length * 2 + LONGESTLONGLZ);
+                }
+                lzCount = packLz(lzOffs, lzLen, lzPacked, lzCount);
+                lzStart[i + 1] = lzCount;
+                if (kind == CandidateCache.REUSE) {
+                    cache.reused++;
+                } else if (kind == CandidateCache.RESCAN) {
+                    cache.rescanned++;
+                } else {
+                    cache.searched++;
+                }
             }
 
-            while (lz.size >= MINLZ && lz.size > rleCap) {
-                Token t = copyToken(lz);
+            for (int size = lzLen; size >= MINLZ && size > rleCap; size--) {
+                Token t = new Token();
+                t.type = TokenType.LZ;
+                t.pos = i;
+                t.size = size;
+                t.offset = lzOffs[size];
                 tokens[t.size] = t;
                 present[t.size] = true;
                 if (t.size > maxSize) {
                     maxSize = t.size;
                 }
-                lz.size -= 1;
             }
 
             if (rleSize > LONGESTRLE) {
@@ -506,7 +1129,10 @@ public class TSCrunch {
                 }
             }
 
-            int lz2 = lz2Offset(workSrc, i);
+            int lz2 = kind == CandidateCache.REUSE ? cache.lz2[cache.oldPos] : lz2Offset(workSrc, i);
+            if (cache != null) {
+                lz2s[i] = lz2;
+            }
             if (lz2 > 0) {
                 Token t = new Token();
                 t.type = TokenType.LZ2;
@@ -565,18 +1191,29 @@ public class TSCrunch {
             }
         }
 
-        int n = workLen;
-        long[] dist = new long[n + 1];
-        int[] prev = new int[n + 1];
-        Token[] prevToken = new Token[n + 1];
+        if (cache != null) {
+            cache.src = workSrc;
+            cache.base = base;
+            cache.lzStart = lzStart;
+            cache.lz = lzPacked;
+            cache.lz2 = lz2s;
+        }
 
-        Arrays.fill(dist, Long.MAX_VALUE / 4);
-        Arrays.fill(prev, -1);
-        dist[0] = 0;
+        long[] dist = arena.dist;
+        int[] prev = arena.prev;
+        Token[] prevToken = arena.prevToken;
+
+        dist[base] = 0;
 
         PriorityQueue<PQItem> pq = new PriorityQueue<>();
-        pq.add(new PQItem(0, 0));
+        pq.add(new PQItem(base, 0));
+        int polls = 0;
+        boolean forwardPass = false;
         while (!pq.isEmpty()) {
+            if (budget != null && (++polls & 1023) == 0 && budget.expired()) {
+                forwardPass = true;
+                break;
+            }
             PQItem item = pq.poll();
             int u = item.vertex;
             if (item.dist != dist[u]) {
@@ -597,38 +1234,88 @@ public class TSCrunch {
             }
         }
 
+        if (forwardPass) {
+            // Every edge points forward, so a single pass in position order finds
+            // an optimum of the same cost without the priority queue, only ties
+            // may be broken differently.
+            Arrays.fill(dist, base, n + 1, Long.MAX_VALUE / 4);
+            Arrays.fill(prev, base, n + 1, -1);
+            dist[base] = 0;
+            for (int u = base; u < n; u++) {
+                if (prev[u] < 0 && u != base) {
+                    continue;
+                }
+                for (Edge edge : graph[u]) {
+                    int v = edge.dest;
+                    long alt = dist[u] + edge.cost;
+                    if (alt < dist[v]) {
+                        dist[v] = alt;
+                        prev[v] = u;
+                        prevToken[v] = copyToken(edge.token);
+                    }
+                }
+            }
+        }
+
         if (prev[n] < 0) {
+            arena.release(n + 1);
             return null;
         }
 
         int tokenCount = 0;
-        for (int v = n; v > 0; v = prev[v]) {
+        for (int v = n; v > base; v = prev[v]) {
             tokenCount++;
         }
 
         Token[] tokenList = new Token[tokenCount];
         int idx = tokenCount - 1;
-        for (int v = n; v > 0; v = prev[v]) {
+        for (int v = n; v > base; v = prev[v]) {
             tokenList[idx--] = prevToken[v];
         }
+        arena.release(n + 1);
+
+        Parse parsed = new Parse();
+        parsed.workSrc = workSrc;
+        parsed.tokens = tokenList;
+        parsed.remainderByte = remainderByte;
+        parsed.optimalRun = optimalRun;
+        return parsed;
+    }
+
+    // Inplace streams end with their last tokens stored as plain bytes, from the
+    // point after which crunching no longer saves space. Returns the index of the
+    // first such token, and their uncrunched size in uncrunchedOut[0].
+    private static int inplaceSafety(Token[] tokenList, int[] uncrunchedOut) {
+        int tokenCount = tokenList.length;
+        int safety = tokenCount;
+        int segmentUncrunched = 0;
+        int segmentCrunched = 0;
+        int totalUncrunched = 0;
+
+        for (int i = tokenCount - 1; i >= 0; i--) {
+            segmentCrunched += payloadLen(tokenList[i]);
+            segmentUncrunched += tokenList[i].size;
+            if (segmentUncrunched <= segmentCrunched) {
+                safety = i;
+                totalUncrunched += segmentUncrunched;
+                segmentUncrunched = 0;
+                segmentCrunched = 0;
+            }
+        }
+        uncrunchedOut[0] = totalUncrunched;
+        return safety;
+    }
 
+    // Turns a parsed token stream into the final crunched stream, including the
+    // inplace safety margin and header.
+    private static byte[] emitCrunched(byte[] workSrc, Token[] tokenList, byte remainderByte, int optimalRun,
+            Options opt, byte[] addr) {
+        int workLen = workSrc.length;
         ByteBuilder out = new ByteBuilder();
         if (opt.inplace) {
-            int safety = tokenCount;
-            int segmentUncrunched = 0;
-            int segmentCrunched = 0;
-            int totalUncrunched = 0;
-
-            for (int i = tokenCount - 1; i >= 0; i--) {
-                segmentCrunched += payloadLen(tokenList[i]);
-                segmentUncrunched += tokenList[i].size;
-                if (segmentUncrunched <= segmentCrunched) {
-                    safety = i;
-                    totalUncrunched += segmentUncrunched;
-                    segmentUncrunched = 0;
-                    segmentCrunched = 0;
-                }
-            }
+            int[] uncrunchedOut = new int[1];
+            int safety = inplaceSafety(tokenList, uncrunchedOut);
+            int totalUncrunched = uncrunchedOut[0];
 
             byte[] remainder;
             int remainderLen = 1;
@@ -668,47 +1355,229 @@ public class TSCrunch {
         return out.toArray();
     }
 
-    private static class PQItem implements Comparable<PQItem> {
-        int vertex;
-        long dist;
+    // Linear time alternative to crunch() for data that won't compress: the
+    // whole input is stored as LITERAL tokens.
+    private static byte[] crunchStored(byte[] src, Options opt, byte[] addr, int[] optimalRunOut) {
+        Parse parsed = parseStored(src, opt.inplace);
+        if (parsed == null) {
+            return null;
+        }
+        optimalRunOut[0] = parsed.optimalRun;
+        return emitCrunched(parsed.workSrc, parsed.tokens, parsed.remainderByte, parsed.optimalRun, opt, addr);
+    }
 
-        PQItem(int vertex, long dist) {
-            this.vertex = vertex;
-            this.dist = dist;
+    private static Parse parseStored(byte[] src, boolean inplace) {
+        if (src == null || src.length <= 0) {
+            return null;
         }
 
-        @Override
-        public int compareTo(PQItem other) {
-            return Long.compare(this.dist, other.dist);
+        int srcLen = src.length;
+        byte remainderByte = 0;
+        byte[] workSrc = src;
+        if (inplace) {
+            remainderByte = src[srcLen - 1];
+            srcLen -= 1;
+            workSrc = Arrays.copyOf(src, srcLen);
         }
+
+        Parse parsed = new Parse();
+        parsed.workSrc = workSrc;
+        parsed.tokens = storedTokens(srcLen);
+        parsed.remainderByte = remainderByte;
+        parsed.optimalRun = findOptimalZero(ARENA.get(), workSrc, 0);
+        return parsed;
     }
 
-    private static boolean parseJmp(String s, Options opt) {
-        if (s == null || s.isEmpty()) {
-            return false;
-        }
-        String p = s;
-        if (p.startsWith("$")) {
-            p = p.substring(1);
-        } else if (p.startsWith("0x") || p.startsWith("0X")) {
-            p = p.substring(2);
-        }
-        try {
-            int val = Integer.parseInt(p, 16);
-            if (val < 0 || val > 0xFFFF) {
-                return false;
-            }
-            opt.jmp = val;
-            return true;
-        } catch (NumberFormatException ex) {
-            return false;
+    private static Token[] storedTokens(int len) {
+        Token[] tokenList = new Token[(len + LONGESTLITERAL - 1) / LONGESTLITERAL];
+        for (int i = 0; i < tokenList.length; i++) {
+            Token t = new Token();
+            t.type = TokenType.LITERAL;
+            t.pos = i * LONGESTLITERAL;
+            t.size = minInt(LONGESTLITERAL, len - t.pos);
+            tokenList[i] = t;
         }
+        return tokenList;
     }
 
-    private static void runCommand(String cmd) {
-        try {
-            String os = System.getProperty("os.name").toLowerCase();
-            ProcessBuilder pb;
+    // Size of the file crunchFile() would write for src, computed from the parsed
+    // path without emitting it. When sampled, only SAMPLEBLOCKS blocks of
+    // SAMPLELEN bytes are parsed, each with the data before it as history, and
+    // their payload is scaled to the whole input; the inplace safety margin is
+    // then left out. Returns -1 if src can't be crunched.
+    private static long estimate(byte[] src, byte[] history, Options opt, boolean sampled) {
+        byte[] crunchSrc = src;
+        int decrunchTo = 0;
+        if (opt.prg) {
+            if (src.length < 2) {
+                return -1;
+            }
+            decrunchTo = (src[0] & 0xff) + 256 * (src[1] & 0xff);
+            crunchSrc = Arrays.copyOfRange(src, 2, src.length);
+        }
+        if (crunchSrc.length == 0) {
+            return -1;
+        }
+        if (history != null) {
+            history = historyData(history, opt, decrunchTo);
+            if (history == null) {
+                return -1;
+            }
+        }
+
+        Token[] tokenList;
+        if (opt.probe && probeIncompressible(crunchSrc)) {
+            tokenList = storedTokens(opt.inplace ? crunchSrc.length - 1 : crunchSrc.length);
+        } else if (sampled && crunchSrc.length > 2 * SAMPLEBLOCKS * SAMPLELEN) {
+            long payload = 0;
+            int step = crunchSrc.length / SAMPLEBLOCKS;
+            for (int k = 0; k < SAMPLEBLOCKS; k++) {
+                int start = k * step;
+                byte[] block = Arrays.copyOfRange(crunchSrc, start, start + SAMPLELEN);
+                byte[] before = start > 0 ? Arrays.copyOfRange(crunchSrc, maxInt(0, start - LONGLZOFFSET), start) : history;
+                Parse parsed = parse(block, before, false, null, null);
+                if (parsed == null) {
+                    return -1;
+                }
+                for (Token t : parsed.tokens) {
+                    payload += payloadLen(t);
+                }
+            }
+            long size = (payload * crunchSrc.length + SAMPLEBLOCKS * SAMPLELEN - 1) / (SAMPLEBLOCKS * SAMPLELEN) + 1;
+            if (opt.inplace) {
+                // at worst, everything after the first byte is stored after the terminator
+                size = Math.min(size, crunchSrc.length);
+            }
+            return size + streamOverhead(opt);
+        } else {
+            Parse parsed = parse(crunchSrc, history, opt.inplace, null, null);
+            if (parsed == null) {
+                return -1;
+            }
+            tokenList = parsed.tokens;
+        }
+
+        int safety = tokenList.length;
+        int[] uncrunchedOut = new int[1];
+        if (opt.inplace) {
+            safety = inplaceSafety(tokenList, uncrunchedOut);
+        }
+        long size = 1 + uncrunchedOut[0];
+        for (int i = 0; i < safety; i++) {
+            size += payloadLen(tokenList[i]);
+        }
+        return size + streamOverhead(opt);
+    }
+
+    // Bytes crunchFile() adds around the token stream and its terminator.
+    private static int streamOverhead(Options opt) {
+        if (opt.inplace) {
+            return 2 + 2 + 2;
+        } else if (opt.sfx) {
+            if (opt.sfxmode == 0) {
+                return opt.blank ? Boot.BLANK_BOOT.length : Boot.BOOT.length;
+            }
+            return Boot.BOOT2.length;
+        }
+        return 1;
+    }
+
+    // Quick guess of whether src is already compressed, from the byte entropy
+    // and the density of short matches and runs in a few sampled blocks.
+    private static boolean probeIncompressible(byte[] src) {
+        final int minLen = 1024;
+        final int blockLen = 512;
+        final int blocks = 16;
+        if (src.length < minLen) {
+            return false;
+        }
+
+        int[] counts = new int[256];
+        int[] lastSeen = new int[4096];
+        int sampled = 0;
+        int matches = 0;
+        int lz2Matches = 0;
+        int step = maxInt(blockLen, src.length / blocks);
+        for (int start = 0; start + blockLen <= src.length; start += step) {
+            Arrays.fill(lastSeen, -1);
+            int end = start + blockLen;
+            for (int i = start; i < end; i++) {
+                counts[src[i] & 0xff]++;
+                sampled++;
+                if (i + 2 >= end) {
+                    continue;
+                }
+                int key = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+                int h = (key * 0x9E3779B1) >>> 20;
+                int j = lastSeen[h];
+                if (src[i] == src[i + 1] && src[i] == src[i + 2]) {
+                    matches++;
+                } else if (j >= 0 && src[j] == src[i] && src[j + 1] == src[i + 1] && src[j + 2] == src[i + 2]) {
+                    matches++;
+                }
+                lastSeen[h] = i;
+                for (int k = maxInt(start, i - LZ2OFFSET); k < i; k++) {
+                    if (src[k] == src[i] && src[k + 1] == src[i + 1]) {
+                        lz2Matches++;
+                        break;
+                    }
+                }
+            }
+        }
+
+        double entropy = 0.0;
+        for (int c : counts) {
+            if (c > 0) {
+                double p = (double)c / (double)sampled;
+                entropy -= p * Math.log(p);
+            }
+        }
+        entropy /= Math.log(2.0);
+
+        return entropy > 7.8 && matches * 100 < sampled && lz2Matches * 100 < sampled;
+    }
+
+    private static class PQItem implements Comparable<PQItem> {
+        int vertex;
+        long dist;
+
+        PQItem(int vertex, long dist) {
+            this.vertex = vertex;
+            this.dist = dist;
+        }
+
+        @Override
+        public int compareTo(PQItem other) {
+            return Long.compare(this.dist, other.dist);
+        }
+    }
+
+    private static boolean parseJmp(String s, Options opt) {
+        if (s == null || s.isEmpty()) {
+            return false;
+        }
+        String p = s;
+        if (p.startsWith("$")) {
+            p = p.substring(1);
+        } else if (p.startsWith("0x") || p.startsWith("0X")) {
+            p = p.substring(2);
+        }
+        try {
+            int val = Integer.parseInt(p, 16);
+            if (val < 0 || val > 0xFFFF) {
+                return false;
+            }
+            opt.jmp = val;
+            return true;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    private static void runCommand(String cmd) {
+        try {
+            String os = System.getProperty("os.name").toLowerCase();
+            ProcessBuilder pb;
             if (os.contains("win")) {
                 pb = new ProcessBuilder("cmd.exe", "/c", cmd);
             } else {
@@ -730,84 +1599,152 @@ public class TSCrunch {
         }
     }
 
-
-
-    public static void main(String[] args) {
-        Options opt = new Options();
-        String jmpArg = null;
-        boolean useX2 = false;
-
-        if (args.length < 3) {
-            usage();
-            return;
-        }
-
+    // Runs the encoder STARTUPRUNS times in a fresh JVM, with the JVM options of
+    // this one and the other arguments, timing each run until it exits.
+    private static void startupBench(String[] args) {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(TSCrunch.class.getName());
         for (String arg : args) {
-            if ("-h".equals(arg)) {
-                usage();
-                return;
+            if (!"--startup-bench".equals(arg)) {
+                cmd.add(arg);
             }
         }
 
-        for (int i = 0; i < args.length - 2; i++) {
-            String arg = args[i];
-            if ("-q".equals(arg)) {
-                opt.quiet = true;
-            } else if ("--selfcheck".equals(arg)) {
-                opt.selfcheck = true;
-            } else if ("-p".equals(arg)) {
-                opt.prg = true;
-            } else if ("-i".equals(arg)) {
-                opt.inplace = true;
-                opt.prg = true;
-            } else if ("-b".equals(arg)) {
-                opt.blank = true;
-            } else if ("-x".equals(arg) || "-x2".equals(arg)) {
-                boolean isX2 = "-x2".equals(arg);
-                if (i + 1 >= args.length) {
-                    usage();
+        long[] times = new long[STARTUPRUNS];
+        for (int i = 0; i < STARTUPRUNS; i++) {
+            ProcessBuilder pb = new ProcessBuilder(cmd);
+            pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            try {
+                long start = System.nanoTime();
+                Process p = pb.start();
+                int code = p.waitFor();
+                times[i] = System.nanoTime() - start;
+                if (code != 0) {
+                    System.err.println("Startup bench: run failed");
                     return;
                 }
-                opt.sfx = true;
-                opt.sfxmode = isX2 ? 1 : 0;
-                opt.prg = true;
-                if (!parseJmp(args[i + 1], opt)) {
-                    System.err.println("Invalid jump address: " + args[i + 1]);
-                    return;
+                System.out.printf("run %d: %.1f ms%n", i + 1, times[i] / 1e6);
+            } catch (IOException | InterruptedException ex) {
+                System.err.println("Startup bench: run failed");
+                return;
+            }
+        }
+        Arrays.sort(times);
+        System.out.printf("startup bench: %d runs, min %.1f ms, median %.1f ms, max %.1f ms%n", STARTUPRUNS,
+            times[0] / 1e6, times[STARTUPRUNS / 2] / 1e6, times[STARTUPRUNS - 1] / 1e6);
+    }
+
+    // A missing or unreadable cache file just means a full search.
+    private static CandidateCache loadCandidates(String path) {
+        CandidateCache cache = new CandidateCache();
+        if (!Files.exists(Paths.get(path))) {
+            return cache;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(path))))) {
+            if (in.readInt() != CandidateCache.MAGIC || in.readInt() != CandidateCache.VERSION) {
+                return cache;
+            }
+            int base = in.readInt();
+            int len = in.readInt();
+            byte[] src = new byte[len];
+            in.readFully(src);
+            int[] lzStart = new int[len + 1];
+            int[] lz2 = new int[len];
+            int[] lz = new int[in.readInt()];
+            for (int i = 0; i < len; i++) {
+                int count = in.readUnsignedByte();
+                lzStart[i + 1] = lzStart[i] + count;
+                for (int k = lzStart[i]; k < lzStart[i + 1]; k++) {
+                    int size = in.readUnsignedByte();
+                    lz[k] = size << 16 | in.readUnsignedShort();
                 }
-                jmpArg = args[i + 1];
-                useX2 = isX2;
-                i++;
+                lz2[i] = in.readByte();
             }
+            cache.src = src;
+            cache.base = base;
+            cache.lzStart = lzStart;
+            cache.lz = lz;
+            cache.lz2 = lz2;
+        } catch (IOException | RuntimeException ex) {
+            return new CandidateCache();
         }
+        return cache;
+    }
 
-        if (opt.sfx && opt.inplace) {
-            System.err.println("Can't create an sfx prg with inplace crunching");
-            return;
+    private static boolean saveCandidates(String path, CandidateCache cache) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(Paths.get(path))))) {
+            out.writeInt(CandidateCache.MAGIC);
+            out.writeInt(CandidateCache.VERSION);
+            out.writeInt(cache.base);
+            out.writeInt(cache.src.length);
+            out.write(cache.src);
+            out.writeInt(cache.lzStart[cache.src.length]);
+            for (int i = 0; i < cache.src.length; i++) {
+                out.writeByte(cache.lzStart[i + 1] - cache.lzStart[i]);
+                for (int k = cache.lzStart[i]; k < cache.lzStart[i + 1]; k++) {
+                    out.writeByte(cache.lz[k] >>> 16);
+                    out.writeShort(cache.lz[k] & 0xffff);
+                }
+                out.writeByte(cache.lz2[i]);
+            }
+            return true;
+        } catch (IOException ex) {
+            return false;
         }
+    }
 
-        String inPath = args[args.length - 2];
-        String outPath = args[args.length - 1];
 
-        byte[] src;
-        try {
-            src = Files.readAllBytes(Paths.get(inPath));
-        } catch (IOException ex) {
-            System.err.println("Failed to read input file");
-            return;
+
+    // Strips the load address from a prg history file, checking that it ends
+    // where the input starts. Returns null after reporting an error.
+    private static byte[] historyData(byte[] history, Options opt, int decrunchTo) {
+        if (!opt.prg) {
+            return history;
+        }
+        if (history.length < 2) {
+            System.err.println("History too small for PRG");
+            return null;
+        }
+        int historyFrom = (history[0] & 0xff) + 256 * (history[1] & 0xff);
+        byte[] data = Arrays.copyOfRange(history, 2, history.length);
+        if (((historyFrom + data.length) & 0xffff) != decrunchTo && !opt.quiet) {
+            System.err.printf("Warning: history ends at $%04x, not at decrunch address $%04x%n",
+                (historyFrom + data.length) & 0xffff, decrunchTo & 0xffff);
         }
+        return data;
+    }
+
+    // Everything main reports about one crunched file.
+    private static class CrunchResult {
+        byte[] data;
+        int sourceLen;
+        int crunchLen;
+        int crunchedLen;
+        int decrunchTo;
+        int decrunchEnd;
+        int loadTo;
+        boolean stored;
+        CrunchBudget budget;
+    }
 
+    // Crunches the contents of one input file as selected by opt, returning the
+    // output file contents, or null after reporting an error.
+    private static CrunchResult crunchFile(byte[] src, byte[] history, Options opt, CandidateCache cache) {
         int sourceLen = src.length;
         byte[] crunchSrc = src;
         int crunchLen = src.length;
         byte[] addr = new byte[] {0, 0};
         int decrunchTo = 0;
-        int loadTo = 0;
 
         if (opt.prg) {
             if (crunchLen < 2) {
                 System.err.println("Input too small for PRG");
-                return;
+                return null;
             }
             addr[0] = crunchSrc[0];
             addr[1] = crunchSrc[1];
@@ -816,28 +1753,51 @@ public class TSCrunch {
             crunchLen -= 2;
         }
 
+        if (history != null) {
+            history = historyData(history, opt, decrunchTo);
+            if (history == null) {
+                return null;
+            }
+        }
+
         int[] optimalRunOut = new int[] { LONGESTRLE };
-        byte[] crunched = crunch(crunchSrc, opt, addr, optimalRunOut);
+        CrunchBudget budget = opt.timeBudget > 0 ? new CrunchBudget(opt.timeBudget) : null;
+        boolean stored = opt.probe && probeIncompressible(crunchSrc);
+        byte[] crunched;
+        if (stored) {
+            crunched = crunchStored(crunchSrc, opt, addr, optimalRunOut);
+        } else {
+            crunched = crunch(crunchSrc, history, opt, addr, optimalRunOut, budget, cache);
+        }
         if (crunched == null) {
             System.err.println("Crunch failed");
-            return;
+            return null;
         }
+        CrunchResult res = finishFile(crunched, optimalRunOut[0], sourceLen, crunchLen, decrunchTo, opt);
+        res.stored = stored;
+        res.budget = budget;
+        return res;
+    }
+
+    // Adds the sfx boot code or the inplace load address to a crunched stream.
+    private static CrunchResult finishFile(byte[] crunched, int optimalRun, int sourceLen, int crunchLen,
+            int decrunchTo, Options opt) {
         int crunchedLen = crunched.length;
-        int optimalRun = optimalRunOut[0];
+        int loadTo = 0;
 
         if (opt.sfx) {
-byte[] bootSrc;
+            byte[] bootSrc;
             int gap = 0;
             if (opt.sfxmode == 0) {
                 if (opt.blank) {
-                    bootSrc = BLANK_BOOT;
+                    bootSrc = Boot.BLANK_BOOT;
                     gap = 5;
                 } else {
-                    bootSrc = BOOT;
+                    bootSrc = Boot.BOOT;
                     gap = 0;
                 }
             } else {
-                bootSrc = BOOT2;
+                bootSrc = Boot.BOOT2;
                 gap = 0;
             }
 
@@ -895,21 +1855,455 @@ byte[] bootSrc;
             crunched = finalOut;
         }
 
+        CrunchResult res = new CrunchResult();
+        res.data = crunched;
+        res.sourceLen = sourceLen;
+        res.crunchLen = crunchLen;
+        res.crunchedLen = crunchedLen;
+        res.decrunchTo = decrunchTo;
+        res.decrunchEnd = decrunchEnd;
+        res.loadTo = loadTo;
+        return res;
+    }
+
+    private static void printStats(String inPath, String outPath, CrunchResult res, CandidateCache cache, Options opt) {
+        double ratio = (double)res.crunchedLen * 100.0 / (double)res.sourceLen;
+        System.out.printf("input file  %s: %s, $%04x - $%04x : %d bytes%n",
+            opt.prg ? "PRG" : "RAW", inPath, res.decrunchTo & 0xffff, res.decrunchEnd & 0xffff, res.sourceLen);
+        System.out.printf("output file %s: %s, $%04x - $%04x : %d bytes%n",
+            (opt.sfx || opt.inplace) ? "PRG" : "RAW", outPath, res.loadTo & 0xffff,
+            (res.loadTo + res.crunchedLen - 1) & 0xffff, res.crunchedLen);
+        System.out.printf("crunched to %.2f%% of original size%n", ratio);
+        if (res.stored) {
+            System.out.println("input looks incompressible: stored as literals");
+        }
+        if (cache != null && !res.stored) {
+            System.out.printf("incremental: %d positions reused, %d rescanned, %d searched%n",
+                cache.reused, cache.rescanned, cache.searched);
+        }
+        if (res.budget != null && res.budget.degraded()) {
+            System.out.printf("time budget exceeded: short-range search from byte %d of %d%n",
+                res.budget.degradedAt, res.crunchLen);
+        }
+    }
+
+    // Writes the variants of a prg listed in opt.variants, out of p, x, x2, xb
+    // and i, to outPath-p.bin, outPath-x.prg and so on. All but inplace share one
+    // parse; inplace, which leaves out the last byte, is parsed at the same time
+    // on a second thread.
+    private static void crunchVariants(byte[] src, String inPath, String outPath, Options opt) {
+        if (src.length < 3) {
+            System.err.println("Input too small for PRG");
+            return;
+        }
+        byte[] addr = new byte[] { src[0], src[1] };
+        int decrunchTo = (addr[0] & 0xff) + 256 * (addr[1] & 0xff);
+        byte[] crunchSrc = Arrays.copyOfRange(src, 2, src.length);
+        boolean stored = opt.probe && probeIncompressible(crunchSrc);
+
+        boolean[] selected = new boolean[VARIANTS.length];
+        for (String name : opt.variants.split(",")) {
+            selected[Arrays.asList(VARIANTS).indexOf(name)] = true;
+        }
+        boolean needParse = selected[0] || selected[1] || selected[2] || selected[3];
+
+        CrunchBudget budget = opt.timeBudget > 0 ? new CrunchBudget(opt.timeBudget) : null;
+        CrunchBudget inplaceBudget = opt.timeBudget > 0 ? new CrunchBudget(opt.timeBudget) : null;
+        Future<Parse> inplaceFuture = null;
+        if (selected[4]) {
+            ExecutorService pool = Executors.newSingleThreadExecutor();
+            inplaceFuture = pool.submit(() ->
+                stored ? parseStored(crunchSrc, true) : parse(crunchSrc, null, true, inplaceBudget, null));
+            pool.shutdown();
+        }
+        Parse parsed = null;
+        if (needParse) {
+            parsed = stored ? parseStored(crunchSrc, false) : parse(crunchSrc, null, false, budget, null);
+        }
+        Parse inplaceParsed = null;
+        if (inplaceFuture != null) {
+            try {
+                inplaceParsed = inplaceFuture.get();
+            } catch (InterruptedException | ExecutionException ex) {
+                inplaceParsed = null;
+            }
+        }
+        if ((needParse && parsed == null) || (selected[4] && inplaceParsed == null)) {
+            System.err.println("Crunch failed");
+            return;
+        }
+
+        for (int v = 0; v < VARIANTS.length; v++) {
+            if (!selected[v]) {
+                continue;
+            }
+            Options vopt = opt.copy();
+            vopt.prg = true;
+            vopt.sfx = v >= 1 && v <= 3;
+            vopt.sfxmode = v == 2 ? 1 : 0;
+            vopt.blank = v == 3;
+            vopt.inplace = v == 4;
+            Parse from = vopt.inplace ? inplaceParsed : parsed;
+
+            byte[] crunched = emitCrunched(from.workSrc, from.tokens, from.remainderByte, from.optimalRun, vopt, addr);
+            CrunchResult res = finishFile(crunched, from.optimalRun, src.length, crunchSrc.length, decrunchTo, vopt);
+            res.stored = stored;
+            res.budget = vopt.inplace ? inplaceBudget : budget;
+
+            String path = outPath + "-" + VARIANTS[v] + (v == 0 ? ".bin" : ".prg");
+            try {
+                Files.write(Paths.get(path), res.data);
+            } catch (IOException ex) {
+                System.err.println("Failed to write output file " + path);
+                return;
+            }
+            if (!opt.quiet) {
+                printStats(inPath, path, res, null, vopt);
+            }
+        }
+    }
+
+    // Crunches the selected PRG files of a d64 image in parallel, and writes a
+    // copy of the image where each of them is replaced by its crunched version.
+    private static void crunchD64(String inPath, String outPath, Options opt) {
+        ByteBuffer image;
+        List<D64Image.DirEntry> selected = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        try (FileChannel ch = FileChannel.open(Paths.get(inPath), StandardOpenOption.READ)) {
+            D64Image in = new D64Image(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+            List<D64Image.DirEntry> entries = in.directory();
+            if (opt.files == null) {
+                for (D64Image.DirEntry d : entries) {
+                    if ((d.type & 0x87) == 0x82) {
+                        selected.add(d);
+                    }
+                }
+            } else {
+                for (String name : opt.files.split(",")) {
+                    D64Image.DirEntry found = null;
+                    for (D64Image.DirEntry d : entries) {
+                        if ((d.type & 0x87) == 0x82 && d.name.equalsIgnoreCase(name)) {
+                            found = d;
+                            break;
+                        }
+                    }
+                    if (found == null) {
+                        System.err.println("PRG file not found in image: " + name);
+                        return;
+                    }
+                    if (!selected.contains(found)) {
+                        selected.add(found);
+                    }
+                }
+            }
+            for (D64Image.DirEntry d : selected) {
+                contents.add(in.readFile(d));
+            }
+            image = ByteBuffer.allocate(in.buf.capacity());
+            image.put(in.buf.duplicate());
+        } catch (IOException ex) {
+            System.err.println("Failed to read d64 image: " + ex.getMessage());
+            return;
+        }
+
+        List<CrunchResult> results = new ArrayList<>();
+        Set<CrunchArena> arenas = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        if (!selected.isEmpty()) {
+            int threads = minInt(selected.size(), Runtime.getRuntime().availableProcessors());
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<CrunchResult>> futures = new ArrayList<>();
+            for (byte[] data : contents) {
+                Callable<CrunchResult> task = () -> {
+                    arenas.add(ARENA.get());
+                    return crunchFile(data, null, opt, null);
+                };
+                futures.add(pool.submit(task));
+            }
+            pool.shutdown();
+            try {
+                for (Future<CrunchResult> f : futures) {
+                    results.add(f.get());
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+                pool.shutdownNow();
+                System.err.println("Crunch failed");
+                return;
+            }
+        }
+
         try {
-            Files.write(Paths.get(outPath), crunched);
+            D64Image out = new D64Image(image);
+            for (int i = 0; i < selected.size(); i++) {
+                if (results.get(i) == null) {
+                    System.err.println("Failed to crunch " + selected.get(i).name);
+                    return;
+                }
+                out.replaceFile(selected.get(i), results.get(i).data);
+            }
+            Files.write(Paths.get(outPath), image.array());
+        } catch (IOException ex) {
+            System.err.println("Failed to write d64 image: " + ex.getMessage());
+            return;
+        }
+
+        if (!opt.quiet) {
+            for (int i = 0; i < selected.size(); i++) {
+                String name = selected.get(i).name;
+                printStats(inPath + ":" + name, outPath + ":" + name, results.get(i), null, opt);
+            }
+        }
+
+        if (opt.arenaStats) {
+            long calls = 0;
+            long hits = 0;
+            long retained = 0;
+            for (CrunchArena arena : arenas) {
+                calls += arena.calls;
+                hits += arena.hits;
+                retained += arena.retainedBytes();
+            }
+            System.out.printf("arena: %d threads, %d crunch calls, %d reuse hits, ~%d bytes retained%n",
+                arenas.size(), calls, hits, retained);
+        }
+    }
+
+    public static void main(String[] args) {
+        Options opt = new Options();
+        String jmpArg = null;
+        boolean useX2 = false;
+
+        for (String arg : args) {
+            if ("-h".equals(arg)) {
+                usage();
+                return;
+            } else if ("--estimate".equals(arg)) {
+                opt.estimate = 1;
+            } else if ("--estimate-fast".equals(arg)) {
+                opt.estimate = 2;
+            }
+        }
+
+        // --estimate only takes an input file
+        int paths = opt.estimate > 0 ? 1 : 2;
+        if (args.length < paths + 1) {
+            usage();
+            return;
+        }
+
+        for (int i = 0; i < args.length - paths; i++) {
+            String arg = args[i];
+            if ("-q".equals(arg)) {
+                opt.quiet = true;
+            } else if ("--time-budget".equals(arg)) {
+                if (i + 1 >= args.length - paths) {
+                    usage();
+                    return;
+                }
+                try {
+                    opt.timeBudget = Long.parseLong(args[i + 1]);
+                } catch (NumberFormatException ex) {
+                    opt.timeBudget = -1;
+                }
+                if (opt.timeBudget <= 0) {
+                    System.err.println("Invalid time budget: " + args[i + 1]);
+                    return;
+                }
+                i++;
+            } else if ("--startup-bench".equals(arg)) {
+                opt.startupBench = true;
+            } else if ("--all-variants".equals(arg)) {
+                opt.allVariants = true;
+                if (i + 1 < args.length - paths && !args[i + 1].startsWith("-")) {
+                    opt.variants = args[i + 1];
+                    i++;
+                }
+            } else if ("--d64".equals(arg)) {
+                opt.d64 = true;
+            } else if ("--files".equals(arg)) {
+                if (i + 1 >= args.length - paths) {
+                    usage();
+                    return;
+                }
+                opt.files = args[i + 1];
+                i++;
+            } else if ("--probe".equals(arg)) {
+                opt.probe = true;
+            } else if ("--incremental".equals(arg)) {
+                opt.incremental = true;
+            } else if ("--arena-stats".equals(arg)) {
+                opt.arenaStats = true;
+            } else if ("--selfcheck".equals(arg)) {
+                opt.selfcheck = true;
+            } else if ("-p".equals(arg)) {
+                opt.prg = true;
+            } else if ("-i".equals(arg)) {
+                opt.inplace = true;
+                opt.prg = true;
+            } else if ("-b".equals(arg)) {
+                opt.blank = true;
+            } else if ("--history".equals(arg)) {
+                if (i + 1 >= args.length - paths) {
+                    usage();
+                    return;
+                }
+                opt.history = args[i + 1];
+                i++;
+            } else if ("-x".equals(arg) || "-x2".equals(arg)) {
+                boolean isX2 = "-x2".equals(arg);
+                if (i + 1 >= args.length) {
+                    usage();
+                    return;
+                }
+                opt.sfx = true;
+                opt.sfxmode = isX2 ? 1 : 0;
+                opt.prg = true;
+                if (!parseJmp(args[i + 1], opt)) {
+                    System.err.println("Invalid jump address: " + args[i + 1]);
+                    return;
+                }
+                jmpArg = args[i + 1];
+                useX2 = isX2;
+                i++;
+            }
+        }
+
+        if (opt.sfx && opt.inplace) {
+            System.err.println("Can't create an sfx prg with inplace crunching");
+            return;
+        }
+
+        if (opt.sfx && opt.history != null) {
+            System.err.println("Can't create an sfx prg with history");
+            return;
+        }
+
+        if (opt.d64 && (opt.history != null || opt.incremental || opt.selfcheck)) {
+            System.err.println("Can't use --history, --incremental or --selfcheck with --d64");
+            return;
+        }
+
+        if (opt.files != null && !opt.d64) {
+            System.err.println("Can't use --files without --d64");
+            return;
+        }
+
+        // Files in the image have to stay loadable, which headless raw streams are not.
+        if (opt.d64 && !opt.sfx && !opt.inplace) {
+            System.err.println("--d64 needs -x, -x2 or -i");
+            return;
+        }
+
+        if (opt.estimate > 0 && (opt.d64 || opt.incremental || opt.selfcheck)) {
+            System.err.println("Can't use --d64, --incremental or --selfcheck with --estimate");
+            return;
+        }
+
+        if (opt.allVariants && (opt.d64 || opt.estimate > 0 || opt.incremental || opt.selfcheck)) {
+            System.err.println("Can't use --d64, --estimate, --incremental or --selfcheck with --all-variants");
+            return;
+        }
+
+        if (opt.allVariants) {
+            if (opt.variants == null) {
+                opt.variants = opt.blank ? "p,x,x2,xb,i" : "p,x,x2,i";
+            }
+            boolean sfxVariant = false;
+            for (String name : opt.variants.split(",")) {
+                int v = Arrays.asList(VARIANTS).indexOf(name);
+                if (v < 0) {
+                    System.err.println("Unknown variant: " + name);
+                    return;
+                }
+                sfxVariant |= v >= 1 && v <= 3;
+            }
+            if (sfxVariant && !opt.sfx) {
+                System.err.println("--all-variants needs a jump address for x, x2 and xb, given with -x or -x2");
+                return;
+            }
+        }
+
+        String inPath = args[args.length - paths];
+        String outPath = args[args.length - 1];
+
+        if (opt.startupBench) {
+            startupBench(args);
+            return;
+        }
+
+        if (opt.d64) {
+            crunchD64(inPath, outPath, opt);
+            return;
+        }
+
+        byte[] src;
+        try {
+            src = Files.readAllBytes(Paths.get(inPath));
+        } catch (IOException ex) {
+            System.err.println("Failed to read input file");
+            return;
+        }
+
+        byte[] history = null;
+        if (opt.history != null) {
+            try {
+                history = Files.readAllBytes(Paths.get(opt.history));
+            } catch (IOException ex) {
+                System.err.println("Failed to read history file");
+                return;
+            }
+        }
+
+        if (opt.allVariants) {
+            crunchVariants(src, inPath, outPath, opt);
+            return;
+        }
+
+        if (opt.estimate > 0) {
+            long size = estimate(src, history, opt, opt.estimate == 2);
+            if (size < 0) {
+                System.err.println("Crunch failed");
+            } else if (opt.quiet) {
+                System.out.println(size);
+            } else {
+                System.out.printf("estimated output size%s: %d bytes, %.2f%% of original size%n",
+                    opt.estimate == 2 ? " (sampled)" : "", size, (double)size * 100.0 / (double)src.length);
+            }
+            return;
+        }
+
+        String cachePath = null;
+        CandidateCache cache = null;
+        if (opt.incremental) {
+            cachePath = outPath + ".tsc";
+            cache = loadCandidates(cachePath);
+        }
+        CrunchResult res = crunchFile(src, history, opt, cache);
+        if (res == null) {
+            return;
+        }
+
+        try {
+            Files.write(Paths.get(outPath), res.data);
         } catch (IOException ex) {
             System.err.println("Failed to write output file");
             return;
         }
 
+        // Candidates found with a shortened search would be reused as if complete.
+        if (cache != null && cache.src != null && !res.stored && (res.budget == null || res.budget.degradedAt < 0)) {
+            if (!saveCandidates(cachePath, cache)) {
+                System.err.println("Failed to write candidate cache");
+            }
+        }
+
         if (!opt.quiet) {
-            double ratio = (double)crunchedLen * 100.0 / (double)sourceLen;
-            System.out.printf("input file  %s: %s, $%04x - $%04x : %d bytes%n",
-                opt.prg ? "PRG" : "RAW", inPath, decrunchTo & 0xffff, decrunchEnd & 0xffff, sourceLen);
-            System.out.printf("output file %s: %s, $%04x - $%04x : %d bytes%n",
-                (opt.sfx || opt.inplace) ? "PRG" : "RAW", outPath, loadTo & 0xffff,
-                (loadTo + crunchedLen - 1) & 0xffff, crunchedLen);
-            System.out.printf("crunched to %.2f%% of original size%n", ratio);
+            printStats(inPath, outPath, res, cache, opt);
+        }
+
+        if (opt.arenaStats) {
+            CrunchArena arena = ARENA.get();
+            System.out.printf("arena: %d crunch calls, %d reuse hits, ~%d bytes retained%n",
+                arena.calls, arena.hits, arena.retainedBytes());
         }
 
         if (opt.selfcheck) {